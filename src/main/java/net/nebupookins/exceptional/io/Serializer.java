@@ -0,0 +1,27 @@
+package net.nebupookins.exceptional.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts values of type <code>T</code> to and from bytes, so that they can be temporarily stored outside of the
+ * heap (for example, in a temp file on local disk).
+ * <p>
+ * An instance must be able to read back every value that it wrote, in the same order that it wrote them. It does not
+ * need to write any framing information of its own (e.g. the length of the value) unless it needs that information to
+ * know where a value ends when reading it back.
+ *
+ * @param <T> the type of the values which can be serialized.
+ */
+public interface Serializer<T> {
+    /**
+     * Writes the provided value to the provided {@link DataOutput}.
+     */
+    public void write(T value, DataOutput out) throws IOException;
+
+    /**
+     * Reads a value previously written by {@link #write(Object, DataOutput)} from the provided {@link DataInput}.
+     */
+    public T read(DataInput in) throws IOException;
+}
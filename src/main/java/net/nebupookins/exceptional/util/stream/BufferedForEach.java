@@ -0,0 +1,131 @@
+package net.nebupookins.exceptional.util.stream;
+
+import net.nebupookins.exceptional.util.function.EConsumer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the items of an upstream {@link Iterator} to a sink in batches, on a dedicated writer thread, so that the
+ * upstream can keep producing items while the sink is busy. At most <code>queueDepth</code> batches wait for the
+ * writer; once that many are waiting, the producing thread blocks until the writer catches up.
+ * <p>
+ * If the sink throws an exception, the producing thread stops pulling items from the upstream, and the writer
+ * discards any batches still waiting. Either way, {@link #forEach} only returns (or throws) once the writer has
+ * finished, and it throws whichever exception the upstream or the sink threw; checked exceptions are wrapped in a
+ * {@link SecretExceptionStreamImpl.SecretException}.
+ * <p>
+ * If the upstream is a {@link ResumableSpliterator}, it only counts items as processed once the batch containing them
+ * has been written, rather than as soon as they are pulled.
+ */
+final class BufferedForEach {
+    private static final AtomicInteger WRITER_COUNTER = new AtomicInteger();
+
+    private BufferedForEach() {
+    }
+
+    /**
+     * @param progress if not null, the {@link ResumableSpliterator} upstream of the provided {@link Iterator}, which
+     *                 is told how far the items have gotten each time a batch has been written.
+     */
+    static <T> void forEach(
+            Iterator<T> upstream,
+            ResumableSpliterator<?, ?> progress,
+            EConsumer<? super List<T>, ?> batchSink,
+            int batchSize,
+            int queueDepth
+    ) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("queueDepth must be positive: " + queueDepth);
+        }
+        if (progress != null) {
+            progress.acknowledgeExternally();
+        }
+        final Batch<T> endOfStream = new Batch<>(null, 0);
+        final BlockingQueue<Batch<T>> queue = new ArrayBlockingQueue<>(queueDepth);
+        final AtomicReference<Throwable> sinkFailure = new AtomicReference<>();
+        final Thread writer = new Thread(() -> {
+            while (true) {
+                final Batch<T> batch = Uninterruptibles.take(queue);
+                if (batch == endOfStream) {
+                    return;
+                }
+                if (sinkFailure.get() != null) {
+                    continue;
+                }
+                try {
+                    batchSink.accept(batch.items);
+                } catch (Throwable e) {
+                    sinkFailure.set(e);
+                    continue;
+                }
+                if (progress != null) {
+                    progress.acknowledge(batch.pulled);
+                }
+            }
+        }, "EStream-forEachBuffered-writer-" + WRITER_COUNTER.incrementAndGet());
+        writer.setDaemon(true);
+        writer.start();
+        Throwable producerFailure = null;
+        try {
+            List<T> items = new ArrayList<>(batchSize);
+            while (sinkFailure.get() == null && upstream.hasNext()) {
+                items.add(upstream.next());
+                if (items.size() == batchSize) {
+                    Uninterruptibles.put(queue, new Batch<>(items, pulled(progress)));
+                    items = new ArrayList<>(batchSize);
+                }
+            }
+            if (!items.isEmpty()) {
+                Uninterruptibles.put(queue, new Batch<>(items, pulled(progress)));
+            }
+        } catch (RuntimeException | Error e) {
+            producerFailure = e;
+            throw e;
+        } finally {
+            Uninterruptibles.put(queue, endOfStream);
+            Uninterruptibles.join(writer);
+            if (progress != null && producerFailure != null) {
+                progress.abort(producerFailure instanceof SecretExceptionStreamImpl.SecretException
+                        ? producerFailure.getCause()
+                        : producerFailure);
+            }
+        }
+        final Throwable cause = sinkFailure.get();
+        if (cause != null) {
+            if (progress != null) {
+                progress.abort(cause);
+            }
+            throw SecretExceptionStreamImpl.rethrowable(cause);
+        }
+        if (progress != null) {
+            progress.complete();
+        }
+    }
+
+    /**
+     * Returns the offset the provided {@link ResumableSpliterator} should commit once everything pulled so far has
+     * been written.
+     */
+    private static long pulled(ResumableSpliterator<?, ?> progress) {
+        return progress == null ? 0 : progress.pulled();
+    }
+
+    private static final class Batch<T> {
+        private final List<T> items;
+        private final long pulled;
+
+        private Batch(List<T> items, long pulled) {
+            this.items = items;
+            this.pulled = pulled;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package net.nebupookins.exceptional.util.stream;
+
+import java.io.IOException;
+
+/**
+ * Durably records how far an {@link EStream} created by
+ * {@link EStream#resumable(CheckpointStore, long, java.time.Duration, java.util.function.Function)} has gotten, so
+ * that a later run of the same job can skip the items which were already processed.
+ *
+ * @see FileCheckpointStore
+ */
+public interface CheckpointStore {
+    /**
+     * Returns the offset most recently passed to {@link #save(long)}, or 0 if nothing was ever saved.
+     */
+    public long load() throws IOException;
+
+    /**
+     * Durably records that the first <code>offset</code> items have been processed. Called from a single background
+     * thread at a time, with offsets which never decrease.
+     */
+    public void save(long offset) throws IOException;
+}
@@ -0,0 +1,323 @@
+package net.nebupookins.exceptional.util.stream;
+
+import net.nebupookins.exceptional.io.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A replayable source of {@link EStream}s, created by {@link EStream#cache()}.
+ * <p>
+ * The items of the original {@link EStream} are computed lazily and incrementally: an item is computed the first time
+ * any stream returned by {@link #stream()} asks for it, and is then remembered so that every other stream (including
+ * streams being consumed concurrently from other threads) can replay it without computing it again. If computing the
+ * original {@link EStream} throws an exception, that same exception is remembered, and is rethrown by every stream
+ * which reaches that point.
+ *
+ * @param <T> the type of items contained in the stream.
+ * @param <E> the type of exception that may be thrown when a terminal method is called.
+ */
+public interface ECachedStream<T, E extends Throwable> extends AutoCloseable {
+    /**
+     * Returns a new {@link EStream} which replays the items of the original {@link EStream} from the beginning.
+     *
+     * @throws IllegalStateException if this {@link ECachedStream} has been closed.
+     */
+    public EStream<T, E> stream();
+
+    /**
+     * Discards the remembered items, deleting the temp file they were spilled to (if any), and closes the original
+     * {@link EStream} if it has not been read to the end yet. Streams which are still being consumed will throw
+     * {@link IllegalStateException}. The temp file is only deleted by this method, so an
+     * {@link ECachedStream} which spilled to disk must be closed.
+     */
+    @Override
+    public void close();
+}
+
+class CachedStreamImpl<T, E extends Throwable> implements ECachedStream<T, E> {
+    /**
+     * The most items an {@link ArrayList} can hold on common JVMs.
+     */
+    private static final int MAX_IN_MEMORY = Integer.MAX_VALUE - 8;
+
+    private final int memoryThreshold;
+    private final Serializer<T> serializer;
+    private final Function<? super IOException, ? extends E> ioExceptionMapper;
+
+    /**
+     * Held while computing items from the upstream, so that each item is computed only once, and while releasing the
+     * upstream.
+     */
+    private final Object fillLock = new Object();
+    private Stream<T> upstream;
+    private Iterator<T> upstreamIterator;
+
+    /**
+     * Guards the remembered items, so that readers can replay them while another thread is computing new ones.
+     */
+    private final ReadWriteLock storageLock = new ReentrantReadWriteLock();
+    private final List<T> inMemory = new ArrayList<>();
+    private final ByteArrayOutputStream spillBuffer = new ByteArrayOutputStream();
+    private Path spillFile;
+    private FileChannel spillChannel;
+    private long spillLength;
+    private boolean closed;
+
+    private volatile long size;
+    private volatile boolean exhausted;
+    private volatile Throwable failure;
+
+    CachedStreamImpl(Stream<T> upstream) {
+        this(upstream, MAX_IN_MEMORY, null, null);
+    }
+
+    CachedStreamImpl(
+            Stream<T> upstream,
+            int memoryThreshold,
+            Serializer<T> serializer,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        if (memoryThreshold < 0) {
+            throw new IllegalArgumentException("memoryThreshold must not be negative: " + memoryThreshold);
+        }
+        this.upstream = upstream;
+        this.upstreamIterator = upstream.iterator();
+        this.memoryThreshold = memoryThreshold;
+        this.serializer = serializer;
+        this.ioExceptionMapper = ioExceptionMapper;
+    }
+
+    @Override
+    public EStream<T, E> stream() {
+        storageLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("ECachedStream has been closed");
+            }
+        } finally {
+            storageLock.readLock().unlock();
+        }
+        return new SecretExceptionStreamImpl<T, E>(StreamSupport.stream(new Replay(), false));
+    }
+
+    @Override
+    public void close() {
+        storageLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inMemory.clear();
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                    Files.deleteIfExists(spillFile);
+                } catch (IOException e) {
+                    //Best effort: there's no one left to report the failure to.
+                }
+            }
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+        //If the first pass never finished, the upstream still holds whatever it was reading from (e.g. the file behind
+        //Files.lines). This waits for any item being computed right now, so must not be done under storageLock.
+        synchronized (fillLock) {
+            if (upstream != null) {
+                releaseUpstream();
+            }
+        }
+    }
+
+    /**
+     * Computes the item at the provided index if needed, and returns whether there is such an item.
+     */
+    private boolean ensureComputed(long index) {
+        if (index >= size) {
+            synchronized (fillLock) {
+                while (index >= size && !exhausted && failure == null) {
+                    computeNext();
+                }
+            }
+        }
+        if (index < size) {
+            return true;
+        }
+        if (failure != null) {
+            throw SecretExceptionStreamImpl.rethrowable(failure);
+        }
+        return false;
+    }
+
+    private void computeNext() {
+        if (upstream == null) {
+            //The upstream is only released early by close().
+            throw new IllegalStateException("ECachedStream has been closed");
+        }
+        final T next;
+        try {
+            if (!upstreamIterator.hasNext()) {
+                exhausted = true;
+                releaseUpstream();
+                return;
+            }
+            next = upstreamIterator.next();
+        } catch (SecretExceptionStreamImpl.SecretException e) {
+            fail(e.getCause());
+            return;
+        } catch (RuntimeException | Error e) {
+            fail(e);
+            return;
+        }
+        //The item has already been pulled from the upstream, so if it can't be remembered, every replay has to fail at
+        //this point; otherwise later replays would silently skip it.
+        try {
+            append(next);
+        } catch (IOException e) {
+            fail(ioExceptionMapper.apply(e));
+        } catch (RuntimeException | Error e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable cause) {
+        failure = cause;
+        releaseUpstream();
+    }
+
+    private void releaseUpstream() {
+        upstream.close();
+        upstream = null;
+        upstreamIterator = null;
+    }
+
+    private void append(T item) throws IOException {
+        storageLock.writeLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("ECachedStream has been closed");
+            }
+            if (size == Long.MAX_VALUE) {
+                throw new IllegalStateException("ECachedStream cannot hold more than " + Long.MAX_VALUE + " items");
+            }
+            if (inMemory.size() < memoryThreshold) {
+                inMemory.add(item);
+            } else if (serializer == null) {
+                throw new IllegalStateException("ECachedStream cannot hold more than " + memoryThreshold
+                        + " items in memory; use EStream.cache(int, Serializer, Function) to spill the rest to disk");
+            } else {
+                spill(item);
+            }
+            size++;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    private void spill(T item) throws IOException {
+        if (spillChannel == null) {
+            spillFile = Files.createTempFile("estream-cache-", ".bin");
+            try {
+                spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(spillFile);
+                throw e;
+            }
+        }
+        //Each record is prefixed with its length, so that readers can walk the file in order without keeping an index
+        //of every record on the heap.
+        spillBuffer.reset();
+        final DataOutputStream out = new DataOutputStream(spillBuffer);
+        out.writeInt(0);
+        serializer.write(item, out);
+        final ByteBuffer bytes = ByteBuffer.wrap(spillBuffer.toByteArray());
+        bytes.putInt(0, bytes.remaining() - Integer.BYTES);
+        long position = spillLength;
+        while (bytes.hasRemaining()) {
+            position += spillChannel.write(bytes, position);
+        }
+        spillLength = position;
+    }
+
+    /**
+     * Returns the item the provided {@link Replay} is at, which must already have been computed.
+     */
+    private T read(Replay replay) {
+        storageLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("ECachedStream has been closed");
+            }
+            if (replay.index < inMemory.size()) {
+                return inMemory.get((int) replay.index);
+            }
+            return readSpilled(replay);
+        } catch (IOException e) {
+            throw new SecretExceptionStreamImpl.SecretException(ioExceptionMapper.apply(e));
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+
+    private T readSpilled(Replay replay) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(length, replay.spillPosition);
+        final ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+        readFully(bytes, replay.spillPosition + Integer.BYTES);
+        final T item = serializer.read(new DataInputStream(new ByteArrayInputStream(bytes.array())));
+        replay.spillPosition += Integer.BYTES + bytes.capacity();
+        return item;
+    }
+
+    private void readFully(ByteBuffer bytes, long start) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (spillChannel.read(bytes, start + bytes.position()) < 0) {
+                throw new EOFException("Spill file " + spillFile + " is shorter than expected");
+            }
+        }
+    }
+
+    private class Replay extends Spliterators.AbstractSpliterator<T> {
+        private long index;
+        /**
+         * The position in the spill file of the next spilled item, since spilled items can only be read in order.
+         */
+        private long spillPosition;
+
+        private Replay() {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (!ensureComputed(index)) {
+                return false;
+            }
+            final T item = read(this);
+            index++;
+            action.accept(item);
+            return true;
+        }
+    }
+}
@@ -29,9 +29,13 @@ class SecretExceptionIntStreamImpl<E extends Throwable> extends SecretExceptionS
         super(delegate);
     }
 
+    SecretExceptionIntStreamImpl(Stream<Integer> delegate, ResumableSpliterator<?, ?> progress) {
+        super(delegate, progress);
+    }
+
     @Override
     public int sum() throws E {
-        return unwrapFromSecretException(() ->
+        return terminate(() ->
                 this.delegate.mapToInt(Integer::intValue).sum());
     }
 }
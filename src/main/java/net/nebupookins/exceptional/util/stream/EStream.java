@@ -1,19 +1,32 @@
 package net.nebupookins.exceptional.util.stream;
 
+import net.nebupookins.exceptional.io.Serializer;
+import net.nebupookins.exceptional.util.EComparator;
+import net.nebupookins.exceptional.util.function.EConsumer;
 import net.nebupookins.exceptional.util.function.EFunction;
 import net.nebupookins.exceptional.util.function.EPredicate;
 import net.nebupookins.exceptional.util.function.ESupplier;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.function.ToIntFunction;
 import java.util.stream.Collector;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Analogous to {@link Stream}, but handles {@link Exception}s in a type-safe manner.
+ * <p>
+ * Unlike {@link Stream}, an {@link EStream} cannot be closed by its caller. Instead, every terminal method closes the
+ * stream before returning or throwing, which releases any threads or temp files used by intermediate operations
+ * (such as {@link #partitionedMap(int, int, EFunction, EFunction)}).
  *
  * @param <T> the type of items contained in the stream.
  * @param <E> the type of exception that may be thrown when a terminal method is called.
@@ -44,6 +57,46 @@ public interface EStream<T, E extends Throwable> {
      */
     public <I2> EStream<I2, E> map(EFunction<? super T, ? extends I2, ? extends E> mapper);
 
+    /**
+     * Returns an {@link EStream} whose items are the result of applying the provided mapping {@link EFunction} to each
+     * item in this {@link EStream}, using <code>partitions</code> worker threads.
+     * <p>
+     * Each item is routed to a worker by the hash of the key which the provided <code>keyFunction</code> returns for
+     * it. All the items with the same key are therefore mapped by the same worker, one at a time, in their original
+     * order, and their results appear in the returned {@link EStream} in that same order. No ordering is guaranteed
+     * between items with different keys. The items of this {@link EStream} are pulled by a separate feeder thread,
+     * and the queues between the feeder, the workers and the returned {@link EStream} hold at most
+     * <code>queueCapacity</code> items each.
+     * <p>
+     * The first exception thrown by this {@link EStream}, the key function or the mapper stops every thread, and is
+     * thrown by the terminal method of the returned {@link EStream}. The terminal method also stops every thread
+     * before it returns, even if it did not consume every item (e.g. because
+     * {@link #forEachBuffered(EConsumer, int, int)}'s sink threw an exception).
+     *
+     * @param partitions    the number of worker threads.
+     * @param queueCapacity the maximum number of items each queue can hold.
+     * @param keyFunction   returns the key of an item; items with equal keys are mapped in order.
+     * @param mapper        the mapping function.
+     * @see Stream#map(Function)
+     */
+    public <I2> EStream<I2, E> partitionedMap(
+            int partitions,
+            int queueCapacity,
+            EFunction<? super T, ?, ? extends E> keyFunction,
+            EFunction<? super T, ? extends I2, ? extends E> mapper
+    );
+
+    /**
+     * Like {@link #partitionedMap(int, int, EFunction, EFunction)}, with queues which can hold 1024 items each.
+     */
+    public default <I2> EStream<I2, E> partitionedMap(
+            int partitions,
+            EFunction<? super T, ?, ? extends E> keyFunction,
+            EFunction<? super T, ? extends I2, ? extends E> mapper
+    ) {
+        return partitionedMap(partitions, 1024, keyFunction, mapper);
+    }
+
     /**
      * Returns an {@link EIntStream} whose items are the result of applying the provided mapping {@link EFunction} to
      * each item in this {@link EStream}.
@@ -52,26 +105,195 @@ public interface EStream<T, E extends Throwable> {
      */
     public EIntStream<E> mapToInt(EFunction<? super T, ? extends Integer, ? extends E> mapper);
 
+    /**
+     * Returns an {@link EStream} whose items are the items in this {@link EStream}, sorted according to the provided
+     * {@link EComparator}. The sort is stable.
+     * <p>
+     * Unlike {@link Stream#sorted(Comparator)}, at most <code>memoryBudget</code> items are held in memory at once,
+     * so this can sort more items than fit in the heap: the items are sorted in runs of <code>memoryBudget</code>
+     * items, each run is written to a temp file on local disk using the provided {@link Serializer}, and the runs are
+     * then lazily merged back together. Any {@link IOException} encountered while doing so is converted into an
+     * <code>E</code> by the provided <code>ioExceptionMapper</code>. The temp files are deleted before the terminal
+     * method of the returned {@link EStream} returns or throws, whether or not it read every item.
+     *
+     * @param comparator        determines the order of the items.
+     * @param serializer        used to write items to, and read items from, the temp files.
+     * @param memoryBudget      the maximum number of items to sort in memory at once.
+     * @param ioExceptionMapper converts {@link IOException}s from the temp files into the exception type of this
+     *                          stream.
+     * @see Stream#sorted(Comparator)
+     */
+    public EStream<T, E> sortedExternal(
+            EComparator<? super T, ? extends E> comparator,
+            Serializer<T> serializer,
+            int memoryBudget,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    );
+
+    /**
+     * Like {@link #sortedExternal(EComparator, Serializer, int, Function)}, but only the first of each group of items
+     * which the provided {@link EComparator} considers equal is kept.
+     * <p>
+     * Note that this deviates from {@link Stream#distinct()}: items are compared using the provided
+     * {@link EComparator} rather than {@link Object#equals(Object)}, and the resulting items are in sorted order
+     * rather than in their original order.
+     *
+     * @see Stream#distinct()
+     */
+    public EStream<T, E> distinctExternal(
+            EComparator<? super T, ? extends E> comparator,
+            Serializer<T> serializer,
+            int memoryBudget,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    );
+
+    /**
+     * Returns an {@link EStream} which records its progress in the provided {@link CheckpointStore}, so that if the
+     * job is run again after failing, it skips the items which the failed run already processed.
+     * <p>
+     * An item counts as processed once the rest of the pipeline is done with it: once the {@link EConsumer} passed to
+     * {@link #forEach(EConsumer)} returns for it, or once the batch containing it has been handed to the sink of
+     * {@link #forEachBuffered(EConsumer, int, int)} without it throwing an exception. Every <code>checkpointEvery</code>
+     * items, or once
+     * <code>checkpointInterval</code> has passed, the number of items processed so far is saved to the
+     * {@link CheckpointStore} on a background thread, so that processing doesn't wait for the disk. It is also saved
+     * when this {@link EStream} runs out of items, and before rethrowing any exception thrown by this {@link EStream}
+     * or by the rest of the pipeline. Any {@link IOException} thrown by the {@link CheckpointStore} is converted into
+     * an <code>E</code> by the provided <code>ioExceptionMapper</code>.
+     * <p>
+     * The skipped items are still pulled from this {@link EStream}, so this method should be called directly on an
+     * {@link EStream} over an indexed source (e.g. a {@link List}, or the lines of a file) which produces the same items
+     * in the same order every time, before any expensive operations. Terminal operations which accumulate a result
+     * (such as {@link #collect(Collector)}) will only see the items which were not skipped, so this is mainly useful
+     * with terminal operations whose side effects persist across runs, such as {@link #forEach(EConsumer)} or
+     * {@link #forEachBuffered(EConsumer, int, int)}.
+     * <p>
+     * Operations which pull items ahead of the rest of the pipeline ({@link #cache()},
+     * {@link #sortedExternal(EComparator, Serializer, int, Function)},
+     * {@link #distinctExternal(EComparator, Serializer, int, Function)},
+     * {@link #partitionedMap(int, int, EFunction, EFunction)} and <code>resumable</code> itself) cannot be used on the
+     * returned {@link EStream}, or on any {@link EStream} derived from it, and throw {@link IllegalStateException}.
+     *
+     * @param store              where the progress is recorded.
+     * @param checkpointEvery    the number of items after which the progress is recorded.
+     * @param checkpointInterval the amount of time after which the progress is recorded.
+     * @param ioExceptionMapper  converts {@link IOException}s from the {@link CheckpointStore} into the exception type
+     *                           of this stream.
+     */
+    public EStream<T, E> resumable(
+            CheckpointStore store,
+            long checkpointEvery,
+            Duration checkpointInterval,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    );
+
+    /**
+     * Like {@link #resumable(CheckpointStore, long, Duration, Function)}, recording the progress every 1000 items or
+     * every 10 seconds.
+     */
+    public default EStream<T, E> resumable(
+            CheckpointStore store,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        return resumable(store, 1000, Duration.ofSeconds(10), ioExceptionMapper);
+    }
+
     /**
      * @see Stream#collect(Collector)
      */
     public <O, A> O collect(Collector<? super T, A, O> collector) throws E;
+
+    /**
+     * Executes the provided {@link EConsumer} on each item in this {@link EStream}.
+     *
+     * @see Stream#forEach(Consumer)
+     */
+    public void forEach(EConsumer<? super T, ? extends E> action) throws E;
+
+    /**
+     * Executes the provided {@link EConsumer} on each item in this {@link EStream}, in the order of the items.
+     *
+     * @see Stream#forEachOrdered(Consumer)
+     */
+    public void forEachOrdered(EConsumer<? super T, ? extends E> action) throws E;
+
+    /**
+     * Groups the items in this {@link EStream} into batches of <code>batchSize</code> items (the last batch may be
+     * smaller), and executes the provided {@link EConsumer} on each batch, in order, on a dedicated writer thread.
+     * <p>
+     * This lets the items keep being computed while a slow sink (e.g. a database or a file) is busy writing the
+     * previous batches. At most <code>queueDepth</code> batches wait for the writer; once that many are waiting, the
+     * computation of further items blocks until the writer catches up.
+     * <p>
+     * If the sink throws an exception, no further items are computed, the batches still waiting are discarded, and
+     * the exception is thrown by this method. Either way, this method only returns once the writer thread has
+     * finished, and once any threads or temp files used to compute the items have been released.
+     *
+     * @param batchSink  the sink to which batches of items are handed.
+     * @param batchSize  the maximum number of items in each batch.
+     * @param queueDepth the maximum number of batches which can wait for the writer thread.
+     * @see Stream#forEachOrdered(Consumer)
+     */
+    public void forEachBuffered(
+            EConsumer<? super List<T>, ? extends E> batchSink,
+            int batchSize,
+            int queueDepth
+    ) throws E;
+
+    /**
+     * Returns an {@link ECachedStream} which can replay the items of this {@link EStream} any number of times, computing
+     * each item only once. Every remembered item is held in memory, so computing more items than a single
+     * {@link java.util.ArrayList} can hold throws {@link IllegalStateException}.
+     * <p>
+     * This is a terminal operation: this {@link EStream} must not be used again afterwards. However, no item is
+     * computed until one of the replaying streams asks for it.
+     */
+    public ECachedStream<T, E> cache();
+
+    /**
+     * Like {@link #cache()}, but once <code>memoryThreshold</code> items are held in memory, the remaining items are
+     * written to a temp file on local disk using the provided {@link Serializer}, and read back from there when they are
+     * replayed. Any {@link IOException} encountered while doing so is converted into an <code>E</code> by the provided
+     * <code>ioExceptionMapper</code>.
+     * <p>
+     * The spilled items cost no heap: each replaying stream reads them back from the temp file in order, so no index
+     * of the temp file is kept in memory.
+     *
+     * @param memoryThreshold   the maximum number of items to hold in memory.
+     * @param serializer        used to write items to, and read items from, the temp file.
+     * @param ioExceptionMapper converts {@link IOException}s from the temp file into the exception type of this stream.
+     */
+    public ECachedStream<T, E> cache(
+            int memoryThreshold,
+            Serializer<T> serializer,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    );
 }
 
 class SecretExceptionStreamImpl<T, E extends Throwable> implements EStream<T, E> {
     protected static class SecretException extends RuntimeException {
-        private SecretException(Throwable cause) {
+        SecretException(Throwable cause) {
             super(null, cause, false, false);
         }
     }
 
     protected final Stream<T> delegate;
 
+    /**
+     * The {@link ResumableSpliterator} this stream was derived from (via {@link #resumable}), if any.
+     */
+    protected final ResumableSpliterator<?, ?> progress;
+
     public SecretExceptionStreamImpl(Stream<T> delegate) {
+        this(delegate, null);
+    }
+
+    SecretExceptionStreamImpl(Stream<T> delegate, ResumableSpliterator<?, ?> progress) {
         this.delegate = delegate;
+        this.progress = progress;
     }
 
-    private static <O> O wrapInSecretException(ESupplier<O, Throwable> supplier) {
+    static <O> O wrapInSecretException(ESupplier<O, Throwable> supplier) {
         try {
             return supplier.get();
         } catch (final RuntimeException | Error e) {
@@ -81,6 +303,32 @@ class SecretExceptionStreamImpl<T, E extends Throwable> implements EStream<T, E>
         }
     }
 
+    /**
+     * Returns the provided {@link Throwable} in a form that can be thrown through the JDK's APIs: unchecked exceptions
+     * are returned as is, {@link Error}s are thrown directly, and checked exceptions are wrapped in a
+     * {@link SecretException}.
+     */
+    static RuntimeException rethrowable(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new SecretException(t);
+    }
+
+    /**
+     * Rejects operations which pull items ahead of the rest of the pipeline, since {@link #resumable} would then count
+     * those items as processed before they really are.
+     */
+    private void requireNotResumable(String operation) {
+        if (this.progress != null) {
+            throw new IllegalStateException(operation + "() cannot be used after resumable(), because it pulls items "
+                    + "before the rest of the pipeline has processed them");
+        }
+    }
+
     protected <O> O unwrapFromSecretException(Supplier<O> supplier) throws E {
         try {
             return supplier.get();
@@ -89,12 +337,26 @@ class SecretExceptionStreamImpl<T, E extends Throwable> implements EStream<T, E>
         }
     }
 
+    /**
+     * Runs a terminal operation, and then closes {@link #delegate}, even if the terminal operation failed or did not
+     * consume every item. Callers have no other way to close an {@link EStream}, so this is what releases the threads
+     * and temp files held by operations such as {@link #partitionedMap} and {@link #sortedExternal}.
+     */
+    protected <O> O terminate(Supplier<O> supplier) throws E {
+        try {
+            return unwrapFromSecretException(supplier);
+        } finally {
+            delegate.close();
+        }
+    }
+
     @Override
     public EStream<T, E> filter(EPredicate<? super T, E> predicate) {
         return new SecretExceptionStreamImpl<T, E>(
                 this.delegate.filter((T input) ->
                         wrapInSecretException(() ->
-                                predicate.test(input))));
+                                predicate.test(input))),
+                this.progress);
     }
 
     @Override
@@ -102,8 +364,23 @@ class SecretExceptionStreamImpl<T, E extends Throwable> implements EStream<T, E>
         return new SecretExceptionStreamImpl<I2, E>(
                 this.delegate.<I2>map((T input) ->
                         wrapInSecretException(() ->
-                                mapper.apply(input)))
-        );
+                                mapper.apply(input))),
+                this.progress);
+    }
+
+    @Override
+    public <I2> EStream<I2, E> partitionedMap(
+            int partitions,
+            int queueCapacity,
+            EFunction<? super T, ?, ? extends E> keyFunction,
+            EFunction<? super T, ? extends I2, ? extends E> mapper
+    ) {
+        requireNotResumable("partitionedMap");
+        final PartitionedMapSpliterator<T, I2> mapped = new PartitionedMapSpliterator<T, I2>(
+                this.delegate.iterator(), partitions, queueCapacity, keyFunction, mapper);
+        return new SecretExceptionStreamImpl<I2, E>(StreamSupport.stream(mapped, false)
+                .onClose(mapped::close)
+                .onClose(this.delegate::close));
     }
 
     @Override
@@ -111,12 +388,116 @@ class SecretExceptionStreamImpl<T, E extends Throwable> implements EStream<T, E>
         return new SecretExceptionIntStreamImpl<E>(this.delegate
                 .map((T input) ->
                         wrapInSecretException(() ->
-                                mapper.apply(input))));
+                                mapper.apply(input))),
+                this.progress);
+    }
+
+    @Override
+    public EStream<T, E> sortedExternal(
+            EComparator<? super T, ? extends E> comparator,
+            Serializer<T> serializer,
+            int memoryBudget,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        return externalSort(comparator, serializer, memoryBudget, false, ioExceptionMapper);
+    }
+
+    @Override
+    public EStream<T, E> distinctExternal(
+            EComparator<? super T, ? extends E> comparator,
+            Serializer<T> serializer,
+            int memoryBudget,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        return externalSort(comparator, serializer, memoryBudget, true, ioExceptionMapper);
+    }
+
+    private EStream<T, E> externalSort(
+            EComparator<? super T, ? extends E> comparator,
+            Serializer<T> serializer,
+            int memoryBudget,
+            boolean distinct,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        requireNotResumable(distinct ? "distinctExternal" : "sortedExternal");
+        final ExternalSortSpliterator<T, E> sorted = new ExternalSortSpliterator<T, E>(
+                this.delegate.iterator(), comparator, serializer, memoryBudget, distinct, ioExceptionMapper);
+        return new SecretExceptionStreamImpl<T, E>(StreamSupport.stream(sorted, false)
+                .onClose(sorted::close)
+                .onClose(this.delegate::close));
     }
 
     @Override
     public <O, A> O collect(Collector<? super T, A, O> collector) throws E {
-        return unwrapFromSecretException(() ->
+        return terminate(() ->
                 delegate.collect(collector));
     }
+
+    @Override
+    public EStream<T, E> resumable(
+            CheckpointStore store,
+            long checkpointEvery,
+            Duration checkpointInterval,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        requireNotResumable("resumable");
+        final ResumableSpliterator<T, E> resumable = new ResumableSpliterator<T, E>(this.delegate.spliterator(),
+                store, checkpointEvery, checkpointInterval.toNanos(), ioExceptionMapper);
+        return new SecretExceptionStreamImpl<T, E>(StreamSupport.stream(resumable, false)
+                        .onClose(resumable::close)
+                        .onClose(this.delegate::close),
+                resumable);
+    }
+
+    @Override
+    public void forEach(EConsumer<? super T, ? extends E> action) throws E {
+        terminate(() -> {
+            delegate.forEach((T input) ->
+                    wrapInSecretException(() -> {
+                        action.accept(input);
+                        return null;
+                    }));
+            return null;
+        });
+    }
+
+    @Override
+    public void forEachOrdered(EConsumer<? super T, ? extends E> action) throws E {
+        terminate(() -> {
+            delegate.forEachOrdered((T input) ->
+                    wrapInSecretException(() -> {
+                        action.accept(input);
+                        return null;
+                    }));
+            return null;
+        });
+    }
+
+    @Override
+    public void forEachBuffered(
+            EConsumer<? super List<T>, ? extends E> batchSink,
+            int batchSize,
+            int queueDepth
+    ) throws E {
+        terminate(() -> {
+            BufferedForEach.forEach(delegate.iterator(), progress, batchSink, batchSize, queueDepth);
+            return null;
+        });
+    }
+
+    @Override
+    public ECachedStream<T, E> cache() {
+        requireNotResumable("cache");
+        return new CachedStreamImpl<T, E>(this.delegate);
+    }
+
+    @Override
+    public ECachedStream<T, E> cache(
+            int memoryThreshold,
+            Serializer<T> serializer,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        requireNotResumable("cache");
+        return new CachedStreamImpl<T, E>(this.delegate, memoryThreshold, serializer, ioExceptionMapper);
+    }
 }
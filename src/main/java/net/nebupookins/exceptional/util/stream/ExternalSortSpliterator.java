@@ -0,0 +1,291 @@
+package net.nebupookins.exceptional.util.stream;
+
+import net.nebupookins.exceptional.io.Serializer;
+import net.nebupookins.exceptional.util.EComparator;
+import net.nebupookins.exceptional.util.function.ESupplier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sorts the items of an upstream {@link Iterator} using at most <code>memoryBudget</code> items worth of heap: the
+ * upstream is cut into runs of that size, each run is sorted in memory and written to a temp file, and the runs are
+ * then lazily merged back together. If the whole upstream fits into a single run, nothing is written to disk.
+ * <p>
+ * At most {@link #MAX_FAN_IN} runs are merged at once, so that the number of open files stays bounded no matter how
+ * large the upstream is. If there are more runs than that, they are first merged in groups into longer runs (and
+ * those into even longer ones, if needed) until few enough remain.
+ * <p>
+ * Checked exceptions thrown by the comparator are wrapped in a
+ * {@link SecretExceptionStreamImpl.SecretException}; {@link IOException}s are first converted into an <code>E</code>
+ * by the provided mapper, and then wrapped in the same way.
+ */
+class ExternalSortSpliterator<T, E extends Throwable> extends Spliterators.AbstractSpliterator<T> {
+    private static final Object END_OF_STREAM = new Object();
+    static final int MAX_FAN_IN = 64;
+
+    private final Iterator<T> upstream;
+    private final Comparator<T> comparator;
+    private final Serializer<T> serializer;
+    private final int memoryBudget;
+    private final boolean distinct;
+    private final Function<? super IOException, ? extends E> ioExceptionMapper;
+
+    private boolean started;
+    private Iterator<T> singleRun;
+    private PriorityQueue<Run> merge;
+    private final List<Run> runs = new ArrayList<>();
+    private Path tempDirectory;
+    private boolean hasPrevious;
+    private T previous;
+
+    ExternalSortSpliterator(
+            Iterator<T> upstream,
+            EComparator<? super T, ? extends E> comparator,
+            Serializer<T> serializer,
+            int memoryBudget,
+            boolean distinct,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.SORTED | (distinct ? Spliterator.DISTINCT : 0));
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("memoryBudget must be positive: " + memoryBudget);
+        }
+        this.upstream = upstream;
+        this.comparator = (T input1, T input2) ->
+                SecretExceptionStreamImpl.wrapInSecretException(() ->
+                        comparator.compare(input1, input2));
+        this.serializer = serializer;
+        this.memoryBudget = memoryBudget;
+        this.distinct = distinct;
+        this.ioExceptionMapper = ioExceptionMapper;
+    }
+
+    @Override
+    public Comparator<? super T> getComparator() {
+        return comparator;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super T> action) {
+        try {
+            if (!started) {
+                started = true;
+                sortRuns();
+            }
+            while (true) {
+                final Object next = nextSorted();
+                if (next == END_OF_STREAM) {
+                    close();
+                    return false;
+                }
+                final T item = (T) next;
+                if (distinct && hasPrevious && comparator.compare(previous, item) == 0) {
+                    continue;
+                }
+                hasPrevious = true;
+                previous = item;
+                action.accept(item);
+                return true;
+            }
+        } catch (IOException e) {
+            close();
+            throw new SecretExceptionStreamImpl.SecretException(ioExceptionMapper.apply(e));
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes any temp files which are still around. Called once every item has been read, or if this spliterator
+     * fails, and otherwise by the terminal method of the {@link EStream} (via {@link java.util.stream.Stream#onClose})
+     * when it gives up part way through. Safe to call more than once.
+     */
+    void close() {
+        for (final Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        merge = null;
+        if (tempDirectory != null) {
+            try {
+                Files.deleteIfExists(tempDirectory);
+            } catch (IOException e) {
+                //Best effort: there's no one left to report the failure to.
+            }
+            tempDirectory = null;
+        }
+    }
+
+    private void sortRuns() throws IOException {
+        List<Run> level = new ArrayList<>();
+        List<T> buffer = new ArrayList<>();
+        while (upstream.hasNext()) {
+            buffer.add(upstream.next());
+            if (buffer.size() >= memoryBudget) {
+                level.add(spill(buffer));
+                buffer = new ArrayList<>();
+            }
+        }
+        if (level.isEmpty()) {
+            buffer.sort(comparator);
+            singleRun = buffer.iterator();
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            level.add(spill(buffer));
+        }
+        while (level.size() > MAX_FAN_IN) {
+            //Groups are made of consecutive runs, and keep their relative order, so that the sort stays stable.
+            final List<Run> nextLevel = new ArrayList<>();
+            for (int start = 0; start < level.size(); start += MAX_FAN_IN) {
+                final List<Run> group = level.subList(start, Math.min(start + MAX_FAN_IN, level.size()));
+                if (group.size() == 1) {
+                    nextLevel.add(group.get(0));
+                } else {
+                    final PriorityQueue<Run> groupMerge = openMerge(group);
+                    nextLevel.add(writeRun(() -> pollMerged(groupMerge)));
+                }
+            }
+            level = nextLevel;
+        }
+        merge = openMerge(level);
+    }
+
+    private Run spill(List<T> buffer) throws IOException {
+        buffer.sort(comparator);
+        final Iterator<T> sorted = buffer.iterator();
+        return writeRun(() -> sorted.hasNext() ? sorted.next() : END_OF_STREAM);
+    }
+
+    /**
+     * Writes the items returned by <code>sortedItems</code> (until it returns {@link #END_OF_STREAM}) to a new run.
+     */
+    @SuppressWarnings("unchecked")
+    private Run writeRun(ESupplier<Object, IOException> sortedItems) throws IOException {
+        if (tempDirectory == null) {
+            tempDirectory = Files.createTempDirectory("estream-sort-");
+        }
+        final Run run = new Run(Files.createTempFile(tempDirectory, "run-", ".bin"));
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(
+                FileChannel.open(run.file, StandardOpenOption.WRITE))))) {
+            T previousInRun = null;
+            for (Object next = sortedItems.get(); next != END_OF_STREAM; next = sortedItems.get()) {
+                final T item = (T) next;
+                if (distinct && run.remaining > 0 && comparator.compare(previousInRun, item) == 0) {
+                    continue;
+                }
+                serializer.write(item, out);
+                run.remaining++;
+                previousInRun = item;
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Opens every run in the provided list, and returns a queue which yields them ordered by their next item.
+     */
+    private PriorityQueue<Run> openMerge(List<Run> group) throws IOException {
+        final PriorityQueue<Run> queue = new PriorityQueue<>(group.size(), (Run run1, Run run2) -> {
+            final int result = comparator.compare(run1.head, run2.head);
+            //Ties go to the earlier run, so that the sort is stable.
+            return result != 0 ? result : Integer.compare(run1.order, run2.order);
+        });
+        for (int i = 0; i < group.size(); i++) {
+            final Run run = group.get(i);
+            run.order = i;
+            if (run.advance()) {
+                queue.add(run);
+            }
+        }
+        return queue;
+    }
+
+    private Object pollMerged(PriorityQueue<Run> queue) throws IOException {
+        final Run run = queue.poll();
+        if (run == null) {
+            return END_OF_STREAM;
+        }
+        final T item = run.head;
+        if (run.advance()) {
+            queue.add(run);
+        }
+        return item;
+    }
+
+    private Object nextSorted() throws IOException {
+        if (singleRun != null) {
+            return singleRun.hasNext() ? singleRun.next() : END_OF_STREAM;
+        }
+        if (merge == null) {
+            return END_OF_STREAM;
+        }
+        return pollMerged(merge);
+    }
+
+    /**
+     * A sorted run which was written to a temp file, and a cursor for reading it back.
+     */
+    private class Run {
+        private final Path file;
+        private int order;
+        private long remaining;
+        private DataInputStream in;
+        private T head;
+
+        private Run(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Reads the next item of this run into {@link #head}, returning false (and deleting the file) if there is none.
+         */
+        private boolean advance() throws IOException {
+            if (remaining == 0) {
+                delete();
+                return false;
+            }
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
+                        FileChannel.open(file, StandardOpenOption.READ))));
+            }
+            head = serializer.read(in);
+            remaining--;
+            return true;
+        }
+
+        private void delete() {
+            head = null;
+            try {
+                if (in != null) {
+                    in.close();
+                    in = null;
+                }
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                //Best effort: there's no one left to report the failure to.
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.nebupookins.exceptional.util.stream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link CheckpointStore} backed by a small local file holding two checkpoint slots, each made of an 8 byte offset
+ * and a checksum. Each call to {@link #save(long)} overwrites the slot which does not hold the latest checkpoint, and
+ * {@link #load()} returns the highest offset whose checksum is intact. A crash in the middle of a write can therefore
+ * only lose that one checkpoint, and the file never grows, no matter how often checkpoints are saved. Delete the file
+ * to start the job over from the beginning.
+ */
+public class FileCheckpointStore implements CheckpointStore, Closeable {
+    /**
+     * How hard {@link FileCheckpointStore#save(long)} tries to make sure each checkpoint survives a crash.
+     */
+    public enum SyncPolicy {
+        /**
+         * Leave it to the operating system to write the checkpoint to disk. Checkpoints survive the JVM crashing, but
+         * the most recent ones may be lost if the whole machine crashes.
+         */
+        NONE,
+        /**
+         * Force the content of the file to disk after each checkpoint.
+         *
+         * @see FileChannel#force(boolean)
+         */
+        DATA,
+        /**
+         * Force both the content and the metadata of the file to disk after each checkpoint.
+         *
+         * @see FileChannel#force(boolean)
+         */
+        DATA_AND_METADATA
+    }
+
+    private static final int SLOT_BYTES = 2 * Long.BYTES;
+    private static final int SLOTS = 2;
+
+    private final Path file;
+    private final SyncPolicy syncPolicy;
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+    private FileChannel channel;
+    private int nextSlot;
+
+    public FileCheckpointStore(Path file, SyncPolicy syncPolicy) {
+        this.file = file;
+        this.syncPolicy = syncPolicy;
+    }
+
+    @Override
+    public synchronized long load() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long[] offsets = readSlots(in);
+            return Math.max(Math.max(offsets[0], offsets[1]), 0);
+        }
+    }
+
+    @Override
+    public synchronized void save(long offset) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            //Never overwrite the latest checkpoint, in case this write is interrupted by a crash.
+            final long[] offsets = readSlots(channel);
+            nextSlot = offsets[0] >= offsets[1] ? 1 : 0;
+        }
+        slot.clear();
+        slot.putLong(offset);
+        slot.putLong(checksum(offset));
+        slot.flip();
+        final long start = (long) nextSlot * SLOT_BYTES;
+        while (slot.hasRemaining()) {
+            channel.write(slot, start + slot.position());
+        }
+        switch (syncPolicy) {
+            case DATA:
+                channel.force(false);
+                break;
+            case DATA_AND_METADATA:
+                channel.force(true);
+                break;
+            case NONE:
+                break;
+        }
+        nextSlot = (nextSlot + 1) % SLOTS;
+    }
+
+    /**
+     * Returns the offset held by each slot, or -1 for a slot which is missing or whose checksum does not match (i.e.
+     * which was never written, or whose write was interrupted by a crash).
+     */
+    private long[] readSlots(FileChannel in) throws IOException {
+        final long[] offsets = new long[SLOTS];
+        final ByteBuffer buffer = ByteBuffer.allocate(SLOT_BYTES);
+        for (int i = 0; i < SLOTS; i++) {
+            final long start = (long) i * SLOT_BYTES;
+            offsets[i] = -1;
+            if (in.size() < start + SLOT_BYTES) {
+                continue;
+            }
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException("Checkpoint file " + file + " was truncated while being read");
+                }
+            }
+            final long offset = buffer.getLong(0);
+            if (buffer.getLong(Long.BYTES) == checksum(offset)) {
+                offsets[i] = offset;
+            }
+        }
+        return offsets;
+    }
+
+    private static long checksum(long offset) {
+        final CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, offset).array());
+        return crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
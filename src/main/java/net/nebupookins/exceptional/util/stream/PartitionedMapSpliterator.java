@@ -0,0 +1,183 @@
+package net.nebupookins.exceptional.util.stream;
+
+import net.nebupookins.exceptional.util.function.EFunction;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Applies a mapping {@link EFunction} to the items of an upstream {@link Iterator} using one worker thread per
+ * partition. A feeder thread pulls the items from the upstream and routes each of them to a partition by the hash of
+ * its key, so all the items with the same key are mapped by the same worker, in their original order. The workers
+ * hand their results back through a shared queue, which the thread consuming this spliterator reads from. All the
+ * queues are bounded, so a slow consumer eventually blocks the workers, and slow workers eventually block the feeder.
+ * <p>
+ * The first exception thrown by the upstream, the key function or the mapper stops every thread, and is rethrown to
+ * the consumer; checked exceptions are wrapped in a {@link SecretExceptionStreamImpl.SecretException}.
+ */
+class PartitionedMapSpliterator<T, R> extends Spliterators.AbstractSpliterator<R> {
+    private static final Object NULL_ITEM = new Object();
+    private static final Object END_OF_PARTITION = new Object();
+    private static final Object FAILED = new Object();
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private final Iterator<T> upstream;
+    private final EFunction<? super T, ?, ?> keyFunction;
+    private final EFunction<? super T, ? extends R, ?> mapper;
+    private final int partitions;
+    private final int queueCapacity;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private ExecutorService executor;
+    private BlockingQueue<Object>[] inputs;
+    private BlockingQueue<Object> output;
+    private int finishedPartitions;
+
+    PartitionedMapSpliterator(
+            Iterator<T> upstream,
+            int partitions,
+            int queueCapacity,
+            EFunction<? super T, ?, ?> keyFunction,
+            EFunction<? super T, ? extends R, ?> mapper
+    ) {
+        super(Long.MAX_VALUE, 0);
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        this.upstream = upstream;
+        this.partitions = partitions;
+        this.queueCapacity = queueCapacity;
+        this.keyFunction = keyFunction;
+        this.mapper = mapper;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super R> action) {
+        if (executor == null) {
+            start();
+        }
+        try {
+            while (finishedPartitions < partitions) {
+                final Object item = Uninterruptibles.take(output);
+                final Throwable cause = failure.get();
+                if (cause != null) {
+                    throw SecretExceptionStreamImpl.rethrowable(cause);
+                }
+                if (item == END_OF_PARTITION) {
+                    finishedPartitions++;
+                    continue;
+                }
+                action.accept(item == NULL_ITEM ? null : (R) item);
+                return true;
+            }
+            executor.shutdown();
+            return false;
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops every thread, abandoning any items which have not been consumed yet. Safe to call more than once.
+     */
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void start() {
+        final int poolNumber = POOL_COUNTER.incrementAndGet();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(partitions + 1, (Runnable runnable) -> {
+            final Thread thread = new Thread(runnable,
+                    "EStream-partitionedMap-" + poolNumber + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        inputs = new BlockingQueue[partitions];
+        for (int i = 0; i < partitions; i++) {
+            inputs[i] = new ArrayBlockingQueue<>(queueCapacity);
+        }
+        output = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < partitions; i++) {
+            final BlockingQueue<Object> input = inputs[i];
+            executor.execute(() -> work(input));
+        }
+        executor.execute(this::feed);
+    }
+
+    private void feed() {
+        try {
+            while (upstream.hasNext()) {
+                final T item = upstream.next();
+                final Object key = keyFunction.apply(item);
+                final int partition = Math.floorMod(Objects.hashCode(key), partitions);
+                inputs[partition].put(item == null ? NULL_ITEM : item);
+            }
+            for (final BlockingQueue<Object> input : inputs) {
+                input.put(END_OF_PARTITION);
+            }
+        } catch (InterruptedException e) {
+            interrupted(e);
+        } catch (SecretExceptionStreamImpl.SecretException e) {
+            fail(e.getCause());
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work(BlockingQueue<Object> input) {
+        try {
+            while (true) {
+                final Object item = input.take();
+                if (item == END_OF_PARTITION) {
+                    output.put(END_OF_PARTITION);
+                    return;
+                }
+                final R result = mapper.apply(item == NULL_ITEM ? null : (T) item);
+                output.put(result == null ? NULL_ITEM : result);
+            }
+        } catch (InterruptedException e) {
+            interrupted(e);
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void interrupted(InterruptedException e) {
+        //Normally, this means some other thread failed or the consumer gave up, and there's nothing left to do. But if
+        //nobody asked us to stop, then the interrupt (or the InterruptedException thrown by the key function or the
+        //mapper) is a failure in its own right.
+        if (!executor.isShutdown()) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable cause) {
+        if (!failure.compareAndSet(null, cause)) {
+            return;
+        }
+        executor.shutdownNow();
+        //The consumer may be blocked waiting for an item that will now never arrive, so make room for a marker to wake
+        //it up. It checks for a failure before looking at whatever it took from the queue.
+        while (!output.offer(FAILED)) {
+            output.poll();
+        }
+    }
+}
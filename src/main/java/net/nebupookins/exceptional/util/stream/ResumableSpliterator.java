@@ -0,0 +1,259 @@
+package net.nebupookins.exceptional.util.stream;
+
+import java.io.IOException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Skips the items of an upstream {@link Spliterator} which a previous run already processed (according to a
+ * {@link CheckpointStore}), and records the progress of the current run.
+ * <p>
+ * By default, an item counts as processed once the action passed to {@link #tryAdvance(Consumer)} returns for it,
+ * i.e. once the rest of a push-based pipeline (such as {@link EStream#forEach}) is done with it. A terminal operation
+ * which hands items off to be processed later (such as {@link EStream#forEachBuffered}) instead calls
+ * {@link #acknowledgeExternally()} before pulling any items, notes {@link #pulled()} whenever it hands some off, and
+ * passes that offset to {@link #acknowledge(long)} once they have really been processed. It is then also responsible
+ * for calling {@link #complete()} or {@link #abort(Throwable)} once it is done.
+ * <p>
+ * Every <code>checkpointEvery</code> items, or once <code>checkpointIntervalNanos</code> have passed, the processed
+ * offset is handed to a background thread which saves it, so that the items are never kept waiting for the disk. When
+ * the pipeline completes or fails, the offset is saved one last time before returning or rethrowing.
+ * <p>
+ * {@link IOException}s from the {@link CheckpointStore} are converted into an <code>E</code> by the provided mapper,
+ * and wrapped in a {@link SecretExceptionStreamImpl.SecretException}.
+ */
+class ResumableSpliterator<T, E extends Throwable> extends Spliterators.AbstractSpliterator<T> {
+    private static final AtomicInteger CHECKPOINTER_COUNTER = new AtomicInteger();
+
+    private final Spliterator<T> upstream;
+    private final CheckpointStore store;
+    private final long checkpointEvery;
+    private final long checkpointIntervalNanos;
+    private final Function<? super IOException, ? extends E> ioExceptionMapper;
+
+    private final AtomicLong pendingOffset = new AtomicLong();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final AtomicReference<IOException> saveFailure = new AtomicReference<>();
+    private ExecutorService checkpointer;
+
+    private boolean externallyAcknowledged;
+    private boolean started;
+    private boolean exhausted;
+    private volatile boolean finished;
+    private long resumeFrom;
+    private long position;
+
+    /**
+     * Guarded by <code>this</code>, since {@link #acknowledge(long)} may be called from another thread.
+     */
+    private long committed;
+    private long lastCheckpointOffset;
+    private long lastCheckpointNanos;
+
+    ResumableSpliterator(
+            Spliterator<T> upstream,
+            CheckpointStore store,
+            long checkpointEvery,
+            long checkpointIntervalNanos,
+            Function<? super IOException, ? extends E> ioExceptionMapper
+    ) {
+        super(Long.MAX_VALUE, upstream.characteristics() & Spliterator.ORDERED);
+        if (checkpointEvery <= 0) {
+            throw new IllegalArgumentException("checkpointEvery must be positive: " + checkpointEvery);
+        }
+        if (checkpointIntervalNanos <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be positive: " + checkpointIntervalNanos);
+        }
+        this.upstream = upstream;
+        this.store = store;
+        this.checkpointEvery = checkpointEvery;
+        this.checkpointIntervalNanos = checkpointIntervalNanos;
+        this.ioExceptionMapper = ioExceptionMapper;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (exhausted) {
+            return false;
+        }
+        try {
+            if (!started) {
+                start();
+            }
+            final IOException failure = saveFailure.get();
+            if (failure != null) {
+                throw failure;
+            }
+            while (position < resumeFrom) {
+                if (!upstream.tryAdvance((T skipped) -> { })) {
+                    return end();
+                }
+                position++;
+            }
+            if (!upstream.tryAdvance(action)) {
+                return end();
+            }
+            position++;
+            if (!externallyAcknowledged) {
+                acknowledge(position);
+            }
+            return true;
+        } catch (IOException e) {
+            final E mapped = ioExceptionMapper.apply(e);
+            if (!externallyAcknowledged) {
+                abort(mapped);
+            }
+            throw new SecretExceptionStreamImpl.SecretException(mapped);
+        } catch (SecretExceptionStreamImpl.SecretException e) {
+            if (!externallyAcknowledged) {
+                abort(e.getCause());
+            }
+            throw e;
+        } catch (RuntimeException | Error e) {
+            if (!externallyAcknowledged) {
+                abort(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the background thread without saving the offset one last time. Safe to call more than once.
+     */
+    void close() {
+        exhausted = true;
+        finished = true;
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+        }
+    }
+
+    /**
+     * Stops items from counting as processed as soon as they are pulled; from now on, only the offsets passed to
+     * {@link #acknowledge(long)} count. Must be called before any item is pulled.
+     */
+    void acknowledgeExternally() {
+        if (started) {
+            throw new IllegalStateException("Items have already been pulled from this stream");
+        }
+        externallyAcknowledged = true;
+    }
+
+    /**
+     * Returns the offset just past the last item pulled so far, including the skipped ones. Must be called from the
+     * thread pulling the items.
+     */
+    long pulled() {
+        return position;
+    }
+
+    /**
+     * Records that every item before the provided offset has been processed. May be called from any thread.
+     */
+    synchronized void acknowledge(long offset) {
+        if (finished || offset <= committed) {
+            return;
+        }
+        committed = offset;
+        final long now = System.nanoTime();
+        if (offset - lastCheckpointOffset >= checkpointEvery || now - lastCheckpointNanos >= checkpointIntervalNanos) {
+            lastCheckpointOffset = offset;
+            lastCheckpointNanos = now;
+            pendingOffset.set(offset);
+            if (saveScheduled.compareAndSet(false, true)) {
+                checkpointer.execute(() -> {
+                    saveScheduled.set(false);
+                    try {
+                        store.save(pendingOffset.get());
+                    } catch (IOException e) {
+                        saveFailure.compareAndSet(null, e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Saves the processed offset one last time, after the pipeline completed successfully.
+     */
+    void complete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            throw new SecretExceptionStreamImpl.SecretException(ioExceptionMapper.apply(e));
+        }
+    }
+
+    /**
+     * Saves the processed offset one last time, after the pipeline failed with the provided exception. Any failure to
+     * save it is added to that exception as a suppressed exception.
+     */
+    void abort(Throwable cause) {
+        try {
+            finish();
+        } catch (IOException e) {
+            if (e != cause) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    private void start() throws IOException {
+        started = true;
+        resumeFrom = store.load();
+        synchronized (this) {
+            committed = resumeFrom;
+            lastCheckpointOffset = resumeFrom;
+            lastCheckpointNanos = System.nanoTime();
+        }
+        final int checkpointerNumber = CHECKPOINTER_COUNTER.incrementAndGet();
+        checkpointer = Executors.newSingleThreadExecutor((Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "EStream-resumable-checkpointer-" + checkpointerNumber);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private boolean end() throws IOException {
+        exhausted = true;
+        if (!externallyAcknowledged) {
+            finish();
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the background thread to finish any save it was in the middle of, and then saves the processed offset.
+     */
+    private void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        exhausted = true;
+        finished = true;
+        if (checkpointer == null) {
+            return;
+        }
+        checkpointer.shutdown();
+        Uninterruptibles.awaitTermination(checkpointer);
+        final IOException failure = saveFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+        final long offset;
+        synchronized (this) {
+            offset = committed;
+        }
+        if (offset > resumeFrom) {
+            store.save(offset);
+        }
+    }
+}
@@ -1,23 +1,58 @@
 package net.nebupookins.exceptional.sample;
 
+import net.nebupookins.exceptional.io.Serializer;
 import net.nebupookins.exceptional.sample.fakeclassesforexamples.*;
+import net.nebupookins.exceptional.util.EComparator;
+import net.nebupookins.exceptional.util.function.EConsumer;
 import net.nebupookins.exceptional.util.function.EFunction;
+import net.nebupookins.exceptional.util.stream.CheckpointStore;
+import net.nebupookins.exceptional.util.stream.ECachedStream;
 import net.nebupookins.exceptional.util.stream.EStream;
+import net.nebupookins.exceptional.util.stream.FileCheckpointStore;
 import org.easymock.EasyMockSupport;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.awt.Color.BLUE;
 import static java.awt.Color.RED;
 import static net.nebupookins.exceptional.hamcrest.ThrowsExceptionMatcher.throwsException;
 import static org.easymock.EasyMock.expect;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 public class StreamSample extends EasyMockSupport {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     /**
      * An example of a simple usage of {@link EStream#map(EFunction)}.
@@ -40,6 +75,135 @@ public class StreamSample extends EasyMockSupport {
         return sum;
     }
 
+    /**
+     * An example of using {@link EStream#cache()} to feed the same expensive upstream to two terminal operations,
+     * without fetching any item from the {@link DataStore} more than once.
+     */
+    public static Pair<List<Item>, Long> cacheExample(final DataStore dataStore, final List<String> itemIds) throws DBConnectionException {
+        try (ECachedStream<Item, DBConnectionException> items = EStream.<String, DBConnectionException>from(itemIds)
+                .map(id -> dataStore.fetchItem(id))
+                .cache()) {
+            final List<Item> allItems = items.stream().collect(Collectors.toList());
+            final long distinctItems = items.stream().collect(Collectors.toSet()).size();
+            return Pair.of(allItems, distinctItems);
+        }
+    }
+
+    /**
+     * An example of using {@link EStream#sortedExternal(EComparator, Serializer, int, java.util.function.Function)} to
+     * sort more lines than would fit in memory at once, where comparing two lines might fail.
+     */
+    public static List<String> sortedExternalExample(
+            final List<String> lines,
+            final EComparator<String, IOException> comparator,
+            final int memoryBudget
+    ) throws IOException {
+        return EStream.<String, IOException>from(lines)
+                .sortedExternal(comparator, STRING_SERIALIZER, memoryBudget, e -> e)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * An example of using {@link EStream#partitionedMap(int, EFunction, EFunction)} to fetch items in parallel, while
+     * still fetching the items of each account in their original order. Each pair contains an account and an item id.
+     */
+    public static Map<String, List<Item>> partitionedMapExample(
+            final DataStore dataStore,
+            final List<Pair<String, String>> accountsAndItemIds
+    ) throws DBConnectionException {
+        return EStream.<Pair<String, String>, DBConnectionException>from(accountsAndItemIds)
+                .partitionedMap(4, Pair::getLeft, pair -> Pair.of(pair.getLeft(), dataStore.fetchItem(pair.getRight())))
+                .collect(Collectors.groupingBy(Pair::getLeft, Collectors.mapping(Pair::getRight, Collectors.toList())));
+    }
+
+    /**
+     * An example of using {@link EStream#forEachBuffered(EConsumer, int, int)} to save items in batches, so that
+     * fetching further items from the {@link DataStore} doesn't have to wait for each batch to be saved.
+     */
+    public static void forEachBufferedExample(
+            final DataStore dataStore,
+            final List<String> itemIds,
+            final EConsumer<List<Item>, DBConnectionException> saveItems
+    ) throws DBConnectionException {
+        EStream.<String, DBConnectionException>from(itemIds)
+                .map(id -> dataStore.fetchItem(id))
+                .forEachBuffered(saveItems, 2, 4);
+    }
+
+    /**
+     * An example of using {@link EStream#resumable(CheckpointStore, long, Duration, java.util.function.Function)} so
+     * that if saving an item fails part way through, running the job again only fetches and saves the remaining items.
+     */
+    public static void resumableExample(
+            final DataStore dataStore,
+            final List<String> itemIds,
+            final CheckpointStore checkpointStore,
+            final EConsumer<Item, IOException> saveItem
+    ) throws IOException {
+        EStream.<String, IOException>from(itemIds)
+                .resumable(checkpointStore, 1, Duration.ofSeconds(10), e -> e)
+                .map(id -> {
+                    try {
+                        return dataStore.fetchItem(id);
+                    } catch (DBConnectionException e) {
+                        throw new IOException(e);
+                    }
+                })
+                .forEach(saveItem);
+    }
+
+    /**
+     * An example of combining {@link EStream#resumable(CheckpointStore, long, Duration, java.util.function.Function)}
+     * with {@link EStream#forEachBuffered(EConsumer, int, int)}: an item only counts as processed once the batch
+     * containing it has been saved, so running the job again after saving a batch fails does not lose any items.
+     */
+    public static void resumableBufferedExample(
+            final List<String> itemIds,
+            final CheckpointStore checkpointStore,
+            final EConsumer<List<Item>, IOException> saveItems
+    ) throws IOException {
+        EStream.<String, IOException>from(itemIds)
+                .resumable(checkpointStore, 1, Duration.ofSeconds(10), e -> e)
+                .map(Item::new)
+                .forEachBuffered(saveItems, 10, 4);
+    }
+
+    private static final Serializer<String> STRING_SERIALIZER = new Serializer<String>() {
+        @Override
+        public void write(String value, DataOutput out) throws IOException {
+            out.writeUTF(value);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    /**
+     * Returns a {@link Serializer} like {@link #STRING_SERIALIZER}, except that it throws the provided exception when
+     * writing the provided value.
+     */
+    private static Serializer<String> failingOn(String failingValue, Exception exception) {
+        return new Serializer<String>() {
+            @Override
+            public void write(String value, DataOutput out) throws IOException {
+                if (value.equals(failingValue)) {
+                    if (exception instanceof IOException) {
+                        throw (IOException) exception;
+                    }
+                    throw (RuntimeException) exception;
+                }
+                STRING_SERIALIZER.write(value, out);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                return STRING_SERIALIZER.read(in);
+            }
+        };
+    }
+
     @Test
     public void simpleMapExample_whenDataStoreDoesntThrowException() throws DBConnectionException {
         final List<String> itemIds = Arrays.asList("1", "2", "3");
@@ -115,4 +279,367 @@ public class StreamSample extends EasyMockSupport {
                 }, () -> RED));
         assertThat(() -> jdkJavadocWidgetExample(widgets), throwsException(is(fakeExceptionForTest)));
     }
+
+    @Test
+    public void cacheExample_fetchesEachItemOnlyOnce() throws DBConnectionException {
+        final List<String> fetchedIds = new ArrayList<>();
+        final DataStore dataStore = new DataStore() {
+            @Override
+            public Item fetchItem(String id) throws DBConnectionException {
+                fetchedIds.add(id);
+                return super.fetchItem(id);
+            }
+        };
+        Pair<List<Item>, Long> result = cacheExample(dataStore, Arrays.asList("1", "2", "1"));
+        assertThat(result, is(Pair.of(Arrays.asList(new Item("1"), new Item("2"), new Item("1")), 2L)));
+        assertThat(fetchedIds, is(Arrays.asList("1", "2", "1")));
+    }
+
+    @Test
+    public void cache_replaysTheSameExceptionToEveryStream() {
+        final DBConnectionException fakeExceptionForTest = new DBConnectionException();
+        final List<String> fetchedIds = new ArrayList<>();
+        final ECachedStream<String, DBConnectionException> cached = EStream.<String, DBConnectionException>from(Arrays.asList("1", "2", "3"))
+                .map(id -> {
+                    fetchedIds.add(id);
+                    if (id.equals("2")) {
+                        throw fakeExceptionForTest;
+                    }
+                    return id;
+                })
+                .cache();
+        assertThat(() -> cached.stream().collect(Collectors.toList()), throwsException(is(fakeExceptionForTest)));
+        assertThat(() -> cached.stream().collect(Collectors.toList()), throwsException(is(fakeExceptionForTest)));
+        assertThat(fetchedIds, is(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void cache_whenSpillingToDisk() throws IOException {
+        final List<String> ids = Arrays.asList("1", "2", "3", "4", "5");
+        try (ECachedStream<String, IOException> cached = EStream.<String, IOException>from(ids)
+                .map(id -> "item-" + id)
+                .cache(2, STRING_SERIALIZER, e -> e)) {
+            final List<String> expected = Arrays.asList("item-1", "item-2", "item-3", "item-4", "item-5");
+            assertThat(cached.stream().collect(Collectors.toList()), is(expected));
+            assertThat(cached.stream().collect(Collectors.toList()), is(expected));
+        }
+    }
+
+    @Test
+    public void cache_whenReadConcurrentlyWhileTheFirstPassIsStillBeingComputed() throws Exception {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ids.add(Integer.toString(i));
+        }
+        final Map<String, Integer> computeCounts = new ConcurrentHashMap<>();
+        final ExecutorService readers = Executors.newFixedThreadPool(2);
+        try (ECachedStream<String, RuntimeException> cached = EStream.<String, RuntimeException>from(ids)
+                .map(id -> {
+                    computeCounts.merge(id, 1, Integer::sum);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "item-" + id;
+                })
+                .cache()) {
+            final CyclicBarrier bothReady = new CyclicBarrier(2);
+            final Callable<List<String>> reader = () -> {
+                bothReady.await();
+                return cached.stream().collect(Collectors.toList());
+            };
+            final Future<List<String>> first = readers.submit(reader);
+            final Future<List<String>> second = readers.submit(reader);
+            final List<String> expected = ids.stream().map(id -> "item-" + id).collect(Collectors.toList());
+            assertThat(first.get(), is(expected));
+            assertThat(second.get(), is(expected));
+        } finally {
+            readers.shutdownNow();
+        }
+        assertThat(computeCounts.keySet(), is(new HashSet<>(ids)));
+        assertThat(new HashSet<>(computeCounts.values()), is(Collections.singleton(1)));
+    }
+
+    @Test
+    public void cache_closesTheOriginalStreamWhenClosedBeforeTheFirstPassFinishes() {
+        final IllegalStateException stopReading = new IllegalStateException();
+        final List<Integer> readItems = new ArrayList<>();
+        final AtomicBoolean upstreamClosed = new AtomicBoolean();
+        try (ECachedStream<Integer, RuntimeException> cached = EStream.<Integer, RuntimeException>from(
+                Stream.of(1, 2, 3, 4).onClose(() -> upstreamClosed.set(true)))
+                .cache()) {
+            assertThat(() -> cached.stream().forEach(item -> {
+                readItems.add(item);
+                if (readItems.size() == 2) {
+                    throw stopReading;
+                }
+            }), throwsException(is(stopReading)));
+        }
+        assertThat(readItems, is(Arrays.asList(1, 2)));
+        assertThat(upstreamClosed.get(), is(true));
+    }
+
+    @Test
+    public void cache_replaysTheSameExceptionWhenSpillingFails() {
+        final IOException fakeExceptionForTest = new IOException();
+        try (ECachedStream<String, IOException> cached = EStream.<String, IOException>from(Arrays.asList("a", "b", "c", "d", "e"))
+                .cache(1, failingOn("c", fakeExceptionForTest), e -> e)) {
+            assertThat(() -> cached.stream().collect(Collectors.toList()), throwsException(is(fakeExceptionForTest)));
+            assertThat(() -> cached.stream().collect(Collectors.toList()), throwsException(is(fakeExceptionForTest)));
+        }
+    }
+
+    @Test
+    public void cache_replaysTheSameExceptionWhenTheSerializerThrowsAnUncheckedException() {
+        final IllegalArgumentException fakeExceptionForTest = new IllegalArgumentException();
+        try (ECachedStream<String, RuntimeException> cached = EStream.<String, RuntimeException>from(Arrays.asList("a", "b", "c", "d", "e"))
+                .cache(1, failingOn("c", fakeExceptionForTest), UncheckedIOException::new)) {
+            assertThat(() -> cached.stream().collect(Collectors.toList()), throwsException(is(fakeExceptionForTest)));
+            assertThat(() -> cached.stream().collect(Collectors.toList()), throwsException(is(fakeExceptionForTest)));
+        }
+    }
+
+    @Test
+    public void sortedExternalExample_whenSpillingToDisk() throws IOException {
+        final List<String> lines = Arrays.asList("d", "b", "g", "a", "f", "c", "e");
+        final List<String> result = sortedExternalExample(lines, String::compareTo, 3);
+        assertThat(result, is(Arrays.asList("a", "b", "c", "d", "e", "f", "g")));
+    }
+
+    @Test
+    public void sortedExternalExample_whenThereAreMoreRunsThanCanBeMergedAtOnce() throws IOException {
+        final List<String> sortedLines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            sortedLines.add(String.format("%04d", i));
+        }
+        final List<String> lines = new ArrayList<>(sortedLines);
+        Collections.shuffle(lines, new Random(42));
+        //A memory budget of 1 produces one run per line, far more than can be merged in a single pass.
+        final List<String> result = sortedExternalExample(lines, String::compareTo, 1);
+        assertThat(result, is(sortedLines));
+    }
+
+    @Test
+    public void sortedExternal_deletesItsTempFilesWhenTheConsumerStopsPartWayThrough() throws IOException {
+        final IOException fakeExceptionForTest = new IOException();
+        final List<String> lines = Arrays.asList("d", "b", "g", "a", "f", "c", "e");
+        final Set<Path> tempDirectoriesBefore = sortTempDirectories();
+        assertThat(() -> EStream.<String, IOException>from(lines)
+                .sortedExternal(String::compareTo, STRING_SERIALIZER, 2, e -> e)
+                .forEachBuffered(items -> {
+                    throw fakeExceptionForTest;
+                }, 1, 1), throwsException(is(fakeExceptionForTest)));
+        assertThat(sortTempDirectories(), is(tempDirectoriesBefore));
+    }
+
+    @Test
+    public void sortedExternalExample_whenComparatorThrowsAnException() {
+        final IOException fakeExceptionForTest = new IOException();
+        final List<String> lines = Arrays.asList("d", "b", "bad", "a");
+        final EComparator<String, IOException> comparator = (String line1, String line2) -> {
+            if (line1.equals("bad") || line2.equals("bad")) {
+                throw fakeExceptionForTest;
+            }
+            return line1.compareTo(line2);
+        };
+        assertThat(() -> sortedExternalExample(lines, comparator, 2), throwsException(is(fakeExceptionForTest)));
+    }
+
+    @Test
+    public void distinctExternal_whenSpillingToDisk() throws IOException {
+        final List<String> lines = Arrays.asList("b", "a", "b", "c", "a", "c", "b");
+        final List<String> result = EStream.<String, IOException>from(lines)
+                .distinctExternal(String::compareTo, STRING_SERIALIZER, 2, e -> e)
+                .collect(Collectors.toList());
+        assertThat(result, is(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void partitionedMapExample_keepsTheOrderOfEachAccount() throws DBConnectionException {
+        final List<Pair<String, String>> accountsAndItemIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            accountsAndItemIds.add(Pair.of("account" + (i % 7), Integer.toString(i)));
+        }
+        final Map<String, List<Item>> result = partitionedMapExample(new DataStore(), accountsAndItemIds);
+        final Map<String, List<Item>> expected = accountsAndItemIds.stream()
+                .collect(Collectors.groupingBy(Pair::getLeft,
+                        Collectors.mapping(pair -> new Item(pair.getRight()), Collectors.toList())));
+        assertThat(result, is(expected));
+    }
+
+    @Test
+    public void partitionedMapExample_whenDataStoreThrowsAnException() {
+        final DBConnectionException fakeExceptionForTest = new DBConnectionException();
+        final List<Pair<String, String>> accountsAndItemIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            accountsAndItemIds.add(Pair.of("account" + (i % 7), Integer.toString(i)));
+        }
+        final DataStore dataStore = new DataStore() {
+            @Override
+            public Item fetchItem(String id) throws DBConnectionException {
+                if (id.equals("500")) {
+                    throw fakeExceptionForTest;
+                }
+                return super.fetchItem(id);
+            }
+        };
+        assertThat(() -> partitionedMapExample(dataStore, accountsAndItemIds), throwsException(is(fakeExceptionForTest)));
+    }
+
+    @Test
+    public void forEach_whenConsumerThrowsAnException() {
+        final DBConnectionException fakeExceptionForTest = new DBConnectionException();
+        final List<String> consumedIds = new ArrayList<>();
+        assertThat(() -> EStream.<String, DBConnectionException>from(Arrays.asList("1", "2", "3"))
+                .forEach(id -> {
+                    if (id.equals("2")) {
+                        throw fakeExceptionForTest;
+                    }
+                    consumedIds.add(id);
+                }), throwsException(is(fakeExceptionForTest)));
+        assertThat(consumedIds, is(Arrays.asList("1")));
+    }
+
+    @Test
+    public void forEachBufferedExample_savesEveryItemInBatches() throws DBConnectionException {
+        final List<List<Item>> savedBatches = new ArrayList<>();
+        forEachBufferedExample(new DataStore(), Arrays.asList("1", "2", "3", "4", "5"), savedBatches::add);
+        assertThat(savedBatches, is(Arrays.asList(
+                Arrays.asList(new Item("1"), new Item("2")),
+                Arrays.asList(new Item("3"), new Item("4")),
+                Arrays.asList(new Item("5")))));
+    }
+
+    @Test
+    public void forEachBufferedExample_whenSavingThrowsAnException() {
+        final DBConnectionException fakeExceptionForTest = new DBConnectionException();
+        final List<String> itemIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            itemIds.add(Integer.toString(i));
+        }
+        assertThat(() -> forEachBufferedExample(new DataStore(), itemIds, items -> {
+            throw fakeExceptionForTest;
+        }), throwsException(is(fakeExceptionForTest)));
+    }
+
+    @Test
+    public void forEachBuffered_releasesTheUpstreamWhenSavingThrowsAnException() throws Exception {
+        final DBConnectionException fakeExceptionForTest = new DBConnectionException();
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            ids.add(String.format("%04d", i));
+        }
+        final Set<Path> tempDirectoriesBefore = sortTempDirectories();
+        assertThat(() -> EStream.<String, DBConnectionException>from(ids)
+                .partitionedMap(4, 8, id -> id, id -> id)
+                .forEachBuffered(items -> {
+                    throw fakeExceptionForTest;
+                }, 10, 2), throwsException(is(fakeExceptionForTest)));
+        final IOException fakeIOExceptionForTest = new IOException();
+        assertThat(() -> EStream.<String, IOException>from(ids)
+                .sortedExternal(String::compareTo, STRING_SERIALIZER, 1000, e -> e)
+                .forEachBuffered(items -> {
+                    throw fakeIOExceptionForTest;
+                }, 10, 2), throwsException(is(fakeIOExceptionForTest)));
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("EStream-partitionedMap-")) {
+                thread.join(10000);
+                assertThat(thread.getName() + " is alive", thread.isAlive(), is(false));
+            }
+        }
+        assertThat(sortTempDirectories(), is(tempDirectoriesBefore));
+    }
+
+    private static Set<Path> sortTempDirectories() throws IOException {
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(
+                Paths.get(System.getProperty("java.io.tmpdir")), "estream-sort-*")) {
+            final Set<Path> result = new HashSet<>();
+            directories.forEach(result::add);
+            return result;
+        }
+    }
+
+    @Test
+    public void resumableExample_whenRunAgainAfterSavingThrowsAnException() throws IOException {
+        final IOException fakeExceptionForTest = new IOException();
+        final List<String> itemIds = Arrays.asList("1", "2", "3", "4", "5");
+        final List<Item> savedItems = new ArrayList<>();
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(
+                temporaryFolder.getRoot().toPath().resolve("checkpoint"), FileCheckpointStore.SyncPolicy.DATA)) {
+            assertThat(() -> resumableExample(new DataStore(), itemIds, checkpointStore, item -> {
+                if (item.equals(new Item("3"))) {
+                    throw fakeExceptionForTest;
+                }
+                savedItems.add(item);
+            }), throwsException(is(fakeExceptionForTest)));
+            assertThat(checkpointStore.load(), is(2L));
+
+            resumableExample(new DataStore(), itemIds, checkpointStore, savedItems::add);
+            assertThat(savedItems, is(Arrays.asList(
+                    new Item("1"), new Item("2"), new Item("3"), new Item("4"), new Item("5"))));
+            assertThat(checkpointStore.load(), is(5L));
+        }
+    }
+
+    @Test
+    public void resumableBufferedExample_whenRunAgainAfterSavingABatchThrowsAnException() throws IOException {
+        final IOException fakeExceptionForTest = new IOException();
+        final List<String> itemIds = new ArrayList<>();
+        final List<Item> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            itemIds.add(Integer.toString(i));
+            expected.add(new Item(Integer.toString(i)));
+        }
+        final List<Item> savedItems = new ArrayList<>();
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(
+                temporaryFolder.getRoot().toPath().resolve("checkpoint"), FileCheckpointStore.SyncPolicy.NONE)) {
+            assertThat(() -> resumableBufferedExample(itemIds, checkpointStore, items -> {
+                if (items.contains(new Item("20"))) {
+                    throw fakeExceptionForTest;
+                }
+                savedItems.addAll(items);
+            }), throwsException(is(fakeExceptionForTest)));
+            assertThat(savedItems, is(expected.subList(0, 20)));
+            assertThat(checkpointStore.load(), is(20L));
+
+            resumableBufferedExample(itemIds, checkpointStore, savedItems::addAll);
+            assertThat(savedItems, is(expected));
+            assertThat(checkpointStore.load(), is(100L));
+        }
+    }
+
+    @Test
+    public void fileCheckpointStore_staysTheSameSizeAndSurvivesATornWrite() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, FileCheckpointStore.SyncPolicy.NONE)) {
+            for (long offset = 1; offset <= 1000; offset++) {
+                checkpointStore.save(offset);
+            }
+        }
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, FileCheckpointStore.SyncPolicy.NONE)) {
+            assertThat(checkpointStore.load(), is(1000L));
+            checkpointStore.save(1001);
+        }
+        final long fileSize = Files.size(file);
+        //Simulate a crash in the middle of writing the latest checkpoint, by corrupting its last byte.
+        final byte[] bytes = Files.readAllBytes(file);
+        final int latest = ByteBuffer.wrap(bytes).getLong(0) == 1001 ? 0 : 16;
+        bytes[latest + 15] ^= 1;
+        Files.write(file, bytes);
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, FileCheckpointStore.SyncPolicy.NONE)) {
+            assertThat(checkpointStore.load(), is(1000L));
+        }
+        assertThat(fileSize, is(32L));
+    }
+
+    @Test
+    public void resumable_rejectsOperationsWhichPullItemsAhead() {
+        final CheckpointStore checkpointStore = new FileCheckpointStore(
+                temporaryFolder.getRoot().toPath().resolve("checkpoint"), FileCheckpointStore.SyncPolicy.NONE);
+        final EStream<String, IOException> resumable = EStream.<String, IOException>from(Arrays.asList("a", "b"))
+                .resumable(checkpointStore, e -> e);
+        assertThat(() -> resumable.map(String::toUpperCase).sortedExternal(String::compareTo, STRING_SERIALIZER, 1, e -> e),
+                throwsException(instanceOf(IllegalStateException.class)));
+    }
 }